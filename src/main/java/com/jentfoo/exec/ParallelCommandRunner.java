@@ -0,0 +1,465 @@
+package com.jentfoo.exec;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.threadly.util.ExceptionUtils;
+
+import com.jentfoo.exec.RunHelper.RunningProcess;
+
+/**
+ * Splits an input stream into chunks of records, and pipes each chunk to its own copy of
+ * a filter command (similar to xargs -P).  The output of each chunk is then written to a
+ * single output stream, either in input order or as each chunk completes.
+ *
+ * At most parallelism processes will be running at once, and all launches go through
+ * the same fork limiting as {@link RunHelper}.  Input is only read as chunks can be
+ * dispatched, and each chunk is limited to a maximum number of bytes, so the full input
+ * is never held in memory.
+ *
+ * Each process may buffer at most the max chunk size of output.  Once that is reached the
+ * process is blocked on its output pipe till the chunk is being written out.  In order
+ * mode this will stall processes which are ahead of the slowest chunk, and in either mode
+ * at most twice parallelism chunks are launched but not yet written out.
+ *
+ * Each running process requires three threads from the provided executor, plus one for
+ * the duration of each run to read and dispatch the input.
+ */
+public class ParallelCommandRunner {
+  private static final int BUFFER_SIZE = 8192;
+  private static final byte DEFAULT_RECORD_DELIMITER = '\n';
+  private static final int DEFAULT_MAX_CHUNK_BYTES = 8 * 1024 * 1024;
+  private static final int THREADS_PER_PROCESS = 3; // stdIn, stdOut and stdErr pipers
+  
+  private final Executor executor;
+  private final int parallelism;
+  private final int recordsPerChunk;
+  private final byte recordDelimiter;
+  private final int maxChunkBytes;
+  private final boolean ordered;
+  
+  public ParallelCommandRunner(Executor executor, int parallelism,
+                               int recordsPerChunk, boolean ordered) {
+    this(executor, parallelism, recordsPerChunk,
+         DEFAULT_RECORD_DELIMITER, DEFAULT_MAX_CHUNK_BYTES, ordered);
+  }
+  
+  /**
+   * Constructs a new runner.  If the executor is a {@link ThreadPoolExecutor} it is
+   * verified to be able to run enough threads at once, since a pool which is too small
+   * would otherwise deadlock.
+   *
+   * @param executor executor to pipe process streams on
+   * @param parallelism maximum number of processes to run at once
+   * @param recordsPerChunk number of records to pipe to each process
+   * @param recordDelimiter byte which terminates each record
+   * @param maxChunkBytes maximum size of a chunk, a chunk will end early at a record boundary to stay under this
+   * @param ordered true to write output in input order, false to write as chunks complete
+   */
+  public ParallelCommandRunner(Executor executor, int parallelism,
+                               int recordsPerChunk, byte recordDelimiter,
+                               int maxChunkBytes, boolean ordered) {
+    if (executor == null) {
+      throw new IllegalArgumentException("Must provide executor");
+    } else if (parallelism < 1) {
+      throw new IllegalArgumentException("parallelism must be >= 1");
+    } else if (recordsPerChunk < 1) {
+      throw new IllegalArgumentException("recordsPerChunk must be >= 1");
+    } else if (maxChunkBytes < 1) {
+      throw new IllegalArgumentException("maxChunkBytes must be >= 1");
+    }
+    if (executor instanceof ThreadPoolExecutor) {
+      ThreadPoolExecutor tpe = (ThreadPoolExecutor)executor;
+      // threads beyond the core size are only started once the queue is full
+      int maxThreads = tpe.getQueue().remainingCapacity() == 0 ?
+                         tpe.getMaximumPoolSize() : tpe.getCorePoolSize();
+      int requiredThreads = (parallelism * THREADS_PER_PROCESS) + 1;
+      if (maxThreads < requiredThreads) {
+        throw new IllegalArgumentException("Executor can only run " + maxThreads +
+                                             " threads, need at least " + requiredThreads +
+                                             " for parallelism of " + parallelism);
+      }
+    }
+    
+    this.executor = executor;
+    this.parallelism = parallelism;
+    this.recordsPerChunk = recordsPerChunk;
+    this.recordDelimiter = recordDelimiter;
+    this.maxChunkBytes = maxChunkBytes;
+    this.ordered = ordered;
+  }
+  
+  /**
+   * Runs a shell command for each chunk of the input, blocking till all output has been
+   * written.  Neither stream is closed, and neither stream is used once this returns.
+   *
+   * On failure no new chunks are started, and any output not yet written is discarded,
+   * but this will block till any processes which are already running have exited.
+   *
+   * @throws BadExitCodeException if any process exits with a non-zero code
+   * @throws IOException if reading or writing fails, or a record is larger than the max chunk size
+   */
+  public void run(String command,
+                  InputStream input,
+                  OutputStream output) throws IOException, InterruptedException {
+    run(RunHelper.getDefaultSchedulingOptions(), command, input, output);
+  }
+  
+  /**
+   * Runs a shell command for each chunk of the input, with each process launched using the
+   * provided scheduling options.  Blocks till all output has been written.  Neither stream
+   * is closed, and neither stream is used once this returns.
+   *
+   * On failure no new chunks are started, and any output not yet written is discarded,
+   * but this will block till any processes which are already running have exited.
+   *
+   * @param options scheduling options for each process, or null to launch without any
+   * @throws BadExitCodeException if any process exits with a non-zero code
+   * @throws IOException if reading or writing fails, or a record is larger than the max chunk size
+   */
+  public void run(SchedulingOptions options,
+                  final String command,
+                  InputStream input,
+                  OutputStream output) throws IOException, InterruptedException {
+    // copied so every chunk is launched with the same options
+    final SchedulingOptions chunkOptions = options == null ? null : new SchedulingOptions(options);
+    run(new ChunkLauncher() {
+      @Override
+      public RunningProcess launch() throws IOException, InterruptedException {
+        return RunHelper.execCommand(executor, chunkOptions, command, true, false);
+      }
+    }, input, output);
+  }
+  
+  /**
+   * Runs a prepared command for each chunk of the input, blocking till all output has
+   * been written.  Neither stream is closed, and neither stream is used once this returns.
+   *
+   * On failure no new chunks are started, and any output not yet written is discarded,
+   * but this will block till any processes which are already running have exited.
+   *
+   * @param parameters values for each parameter slot, used for every chunk
+   * @throws BadExitCodeException if any process exits with a non-zero code
+   * @throws IOException if reading or writing fails, or a record is larger than the max chunk size
+   */
+  public void run(final PreparedCommand command,
+                  InputStream input,
+                  OutputStream output,
+                  final String... parameters) throws IOException, InterruptedException {
+    command.getLaunchCommand(parameters); // verify parameters before starting
+    run(new ChunkLauncher() {
+      @Override
+      public RunningProcess launch() throws IOException, InterruptedException {
+        return RunHelper.execCommand(executor, command, true, parameters);
+      }
+    }, input, output);
+  }
+  
+  private void run(ChunkLauncher launcher,
+                   InputStream input,
+                   OutputStream output) throws IOException, InterruptedException {
+    FanOut fanOut = new FanOut(launcher, input);
+    executor.execute(fanOut);
+    fanOut.merge(output);
+  }
+  
+  private interface ChunkLauncher {
+    public RunningProcess launch() throws IOException, InterruptedException;
+  }
+  
+  private static class Chunk {
+    private final int index;
+    private final RunningProcess process;  // null to indicate the end, index is then the chunk count
+    private final AtomicBoolean queued;
+    
+    private Chunk(int index, RunningProcess process) {
+      this.index = index;
+      this.process = process;
+      queued = new AtomicBoolean(false);
+    }
+  }
+  
+  private class FanOut implements Runnable {
+    private final ChunkLauncher launcher;
+    private final InputStream input;
+    private final Semaphore processSlots;
+    private final Semaphore windowSlots;  // chunks which are launched but not yet written out
+    private final BlockingQueue<Chunk> mergeQueue;
+    private final Set<Chunk> activeChunks;  // launched but not yet written out
+    private volatile boolean aborted;
+    private volatile Throwable dispatchFailure;
+    private Thread dispatchThread;  // synchronized on this, set while dispatching
+    
+    private FanOut(ChunkLauncher launcher, InputStream input) {
+      this.launcher = launcher;
+      this.input = input;
+      processSlots = new Semaphore(parallelism);
+      // allow extra chunks to run while waiting on a slow chunk to maintain the order
+      windowSlots = new Semaphore(ordered ? parallelism * 2 : parallelism);
+      mergeQueue = new LinkedBlockingQueue<Chunk>();
+      activeChunks = Collections.newSetFromMap(new ConcurrentHashMap<Chunk, Boolean>());
+      aborted = false;
+      dispatchFailure = null;
+      dispatchThread = null;
+    }
+    
+    @Override
+    public void run() {
+      int chunkCount = 0;
+      try {
+        synchronized (this) {
+          if (aborted) {
+            return;
+          }
+          dispatchThread = Thread.currentThread();
+        }
+        
+        ChunkReader reader = new ChunkReader(input, recordsPerChunk, recordDelimiter, maxChunkBytes);
+        while (! aborted) {
+          windowSlots.acquire();
+          processSlots.acquire();
+          boolean launched = false;
+          try {
+            byte[] data = reader.next();
+            // check again since abort may have happened while blocked reading
+            if (data == null || aborted) {
+              break;
+            }
+            
+            final Chunk chunk = new Chunk(chunkCount, launcher.launch());
+            try {
+              chunk.process.pipeToStdIn(new ByteArrayInputStream(data));
+            } catch (RuntimeException e) {
+              // never registered, so slots are released below and it must not be left running
+              chunk.process.destroy();
+              throw e;
+            }
+            
+            activeChunks.add(chunk);
+            if (ordered) {
+              queueForMerge(chunk);
+            }
+            chunkCount++;
+            launched = true;
+            // unordered chunks are written as they complete, or once they can buffer no more
+            chunk.process.setStdOutBufferLimit(maxChunkBytes, ordered ? null : new Runnable() {
+              @Override
+              public void run() {
+                queueForMerge(chunk);
+              }
+            });
+            chunk.process.setFinishListener(new Runnable() {
+              @Override
+              public void run() {
+                processSlots.release();
+                if (! ordered) {
+                  queueForMerge(chunk);
+                }
+              }
+            });
+          } finally {
+            if (! launched) {
+              processSlots.release();
+              windowSlots.release();
+            }
+          }
+        }
+      } catch (Throwable t) {
+        if (! aborted) {
+          dispatchFailure = t;
+        }
+      } finally {
+        synchronized (this) {
+          dispatchThread = null;
+          Thread.interrupted();  // clear any interrupt from abort, so it does not leak to the executor
+        }
+        mergeQueue.add(new Chunk(chunkCount, null));
+      }
+    }
+    
+    private void queueForMerge(Chunk chunk) {
+      if (chunk.queued.compareAndSet(false, true)) {
+        mergeQueue.add(chunk);
+      }
+    }
+    
+    private void merge(OutputStream output) throws IOException, InterruptedException {
+      boolean finished = false;
+      boolean endReceived = false;
+      try {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int mergedCount = 0;
+        int chunkCount = -1;
+        while (chunkCount < 0 || mergedCount < chunkCount) {
+          Chunk chunk = mergeQueue.take();
+          if (chunk.process == null) {
+            endReceived = true;
+            chunkCount = chunk.index;
+            continue;
+          }
+          
+          // in order mode this will stream the output as the process produces it
+          InputStream stdOut = chunk.process.stdOutStream();
+          while (true) {
+            int readCount;
+            try {
+              readCount = stdOut.read(buffer);
+            } catch (InterruptedIOException e) {
+              Thread.interrupted();  // reset since we are converting to an InterruptedException
+              throw new InterruptedException();
+            }
+            if (readCount == -1) {
+              break;
+            }
+            output.write(buffer, 0, readCount);
+          }
+          int exitValue = chunk.process.exitValue();
+          if (exitValue != 0) {
+            throw new BadExitCodeException(exitValue, "Chunk " + chunk.index + " failed: " +
+                                                        chunk.process.stdErrStr());
+          }
+          
+          activeChunks.remove(chunk);
+          mergedCount++;
+          windowSlots.release();
+        }
+        output.flush();
+        
+        finished = true;
+      } finally {
+        if (! finished) {
+          abort(endReceived);
+        }
+      }
+      
+      Throwable t = dispatchFailure;
+      if (t instanceof IOException) {
+        throw (IOException)t;
+      } else if (t instanceof InterruptedException) {
+        throw (InterruptedException)t;
+      } else if (t != null) {
+        throw ExceptionUtils.makeRuntime(t);
+      }
+    }
+    
+    // stops dispatching, discards unwritten output, and blocks till the dispatcher and all processes are done
+    private void abort(boolean endReceived) {
+      synchronized (this) {
+        aborted = true;
+        if (dispatchThread != null) {
+          dispatchThread.interrupt();  // wake if blocked waiting for a slot
+        }
+      }
+      
+      boolean interrupted = false;
+      while (! endReceived) {
+        try {
+          endReceived = mergeQueue.take().process == null;
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+      // once the dispatcher is done no more chunks will be added
+      for (Chunk chunk : activeChunks) {
+        chunk.process.discardStdOut();
+      }
+      for (Chunk chunk : activeChunks) {
+        while (true) {
+          try {
+            chunk.process.blockTillFinished();
+            break;
+          } catch (InterruptedException e) {
+            interrupted = true;
+          }
+        }
+      }
+      activeChunks.clear();
+      // every process holds a slot till its finish listener has run
+      processSlots.acquireUninterruptibly(parallelism);
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+  
+  static class ChunkReader {
+    private final InputStream input;
+    private final int recordsPerChunk;
+    private final byte recordDelimiter;
+    private final int maxChunkBytes;
+    private byte[] buffer;
+    private int length;  // bytes in buffer, carried over from the last chunk or newly read
+    private boolean endReached;
+    
+    ChunkReader(InputStream input, int recordsPerChunk,
+                byte recordDelimiter, int maxChunkBytes) {
+      this.input = input;
+      this.recordsPerChunk = recordsPerChunk;
+      this.recordDelimiter = recordDelimiter;
+      this.maxChunkBytes = maxChunkBytes;
+      buffer = new byte[Math.min(BUFFER_SIZE, maxChunkBytes)];
+      length = 0;
+      endReached = false;
+    }
+    
+    // returns null once the input has been fully consumed
+    byte[] next() throws IOException {
+      int recordCount = 0;
+      int recordsEnd = 0;
+      int scanned = 0;
+      while (true) {
+        while (scanned < length) {
+          if (buffer[scanned++] == recordDelimiter) {
+            recordCount++;
+            recordsEnd = scanned;
+            if (recordCount == recordsPerChunk) {
+              return take(recordsEnd);
+            }
+          }
+        }
+        
+        if (endReached) {
+          return length == 0 ? null : take(length);
+        } else if (length == maxChunkBytes) {
+          if (recordsEnd == 0) {
+            throw new IOException("Record is larger than max chunk size of " + maxChunkBytes);
+          }
+          return take(recordsEnd);
+        }
+        
+        if (length == buffer.length) {
+          byte[] newBuffer = new byte[(int)Math.min((long)buffer.length * 2, maxChunkBytes)];
+          System.arraycopy(buffer, 0, newBuffer, 0, length);
+          buffer = newBuffer;
+        }
+        int readCount = input.read(buffer, length, buffer.length - length);
+        if (readCount == -1) {
+          endReached = true;
+        } else {
+          length += readCount;
+        }
+      }
+    }
+    
+    // removes the first bytes as a chunk, moving any remaining to the start of the buffer
+    private byte[] take(int count) {
+      byte[] result = new byte[count];
+      System.arraycopy(buffer, 0, result, 0, count);
+      length -= count;
+      System.arraycopy(buffer, count, buffer, 0, length);
+      return result;
+    }
+  }
+}
@@ -0,0 +1,343 @@
+package com.jentfoo.exec;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A command which is validated, quoted and rendered once so that it can be launched
+ * repeatedly through {@link RunHelper} with minimal string work before the fork.
+ *
+ * The executable is resolved to an absolute path when the command is prepared, so the
+ * shell does not have to search the PATH on every launch.  Lookups are cached, use
+ * {@link #invalidatePathCache()} if executables are added or moved on the PATH.
+ *
+ * Arguments provided to the constructors are always passed literally.  Commands with
+ * parameter slots, which must be bound with a value each time the command is executed,
+ * are constructed through {@link Builder#addParameter()}.
+ */
+public class PreparedCommand {
+  private static final String PARAMETER_DISPLAY = "{}";
+  private static final ConcurrentHashMap<String, String> RESOLVED_EXECUTABLES =
+      new ConcurrentHashMap<String, String>();
+  
+  /**
+   * clears all cached PATH lookups, future prepared commands will search the PATH again
+   */
+  public static void invalidatePathCache() {
+    RESOLVED_EXECUTABLES.clear();
+  }
+  
+  /**
+   * clears the cached PATH lookup for a single executable name
+   *
+   * @param executable name of the executable as provided to the command
+   */
+  public static void invalidatePathCache(String executable) {
+    RESOLVED_EXECUTABLES.remove(executable);
+  }
+  
+  static String resolveExecutable(String executable) {
+    if (executable.indexOf(File.separatorChar) >= 0) {
+      File f = new File(executable);
+      if (! f.isFile() || ! f.canExecute()) {
+        throw new IllegalArgumentException("Not an executable file: " + executable);
+      }
+      return f.getAbsolutePath();
+    }
+    
+    String result = RESOLVED_EXECUTABLES.get(executable);
+    if (result == null) {
+      String path = System.getenv("PATH");
+      if (path != null) {
+        String[] pathDirs = path.split(File.pathSeparator);
+        for (int i = 0; i < pathDirs.length; i++) {
+          if (pathDirs[i].length() == 0) {
+            continue;
+          }
+          File f = new File(pathDirs[i], executable);
+          if (f.isFile() && f.canExecute()) {
+            result = f.getAbsolutePath();
+            break;
+          }
+        }
+      }
+      if (result == null) {
+        throw new IllegalArgumentException("Could not find executable on PATH: " + executable);
+      }
+      
+      RESOLVED_EXECUTABLES.put(executable, result);
+    }
+    
+    return result;
+  }
+  
+  private static void validateArgument(String arg) {
+    if (arg == null) {
+      throw new IllegalArgumentException("Command arguments can not be null");
+    } else if (arg.indexOf('\0') >= 0) {
+      throw new IllegalArgumentException("Command arguments can not contain null characters: " + arg);
+    }
+  }
+  
+  private static boolean needsQuoting(String arg) {
+    if (arg.length() == 0) {
+      return true;
+    }
+    for (int i = 0; i < arg.length(); i++) {
+      char c = arg.charAt(i);
+      if ((c < 'a' || c > 'z') && (c < 'A' || c > 'Z') && (c < '0' || c > '9') &&
+          c != '-' && c != '_' && c != '.' && c != '/' && c != '=' &&
+          c != ':' && c != ',' && c != '+' && c != '@' && c != '%') {
+        return true;
+      }
+    }
+    return false;
+  }
+  
+  static String quoteArgument(String arg) {
+    validateArgument(arg);
+    if (! needsQuoting(arg)) {
+      return arg;
+    }
+    
+    StringBuilder sb = new StringBuilder(arg.length() + 2);
+    sb.append('\'');
+    for (int i = 0; i < arg.length(); i++) {
+      char c = arg.charAt(i);
+      if (c == '\'') {
+        sb.append("'\\''");
+      } else {
+        sb.append(c);
+      }
+    }
+    sb.append('\'');
+    return sb.toString();
+  }
+  
+  private final String shell;
+  private final String executable;
+  private final int parameterCount;
+  private final String[] scriptFragments;  // script is fragments with parameters between each
+  private final int fragmentsLength;
+  private final String[] launchCommand; // only set if there are no parameters
+  
+  /**
+   * Constructs a new prepared command with no parameters.  The command will be launched
+   * with the shell and scheduling options set in {@link RunHelper} at the time of
+   * construction.
+   *
+   * @param command executable followed by its arguments
+   */
+  public PreparedCommand(String... command) {
+    this(RunHelper.getDefaultSchedulingOptions(), command);
+  }
+  
+  /**
+   * Constructs a new prepared command with no parameters.  The command will be launched
+   * with the shell set through {@link RunHelper#setDefaultShell(String)} at the time of
+   * construction.
+   *
+   * @param options scheduling options to launch with, or null to not modify scheduling
+   * @param command executable followed by its arguments
+   */
+  public PreparedCommand(SchedulingOptions options, String... command) {
+    this(options, firstArgument(command), literalArguments(command));
+  }
+  
+  private static String firstArgument(String[] command) {
+    if (command == null || command.length == 0) {
+      throw new IllegalArgumentException("Must provide an executable");
+    }
+    return command[0];
+  }
+  
+  private static List<String> literalArguments(String[] command) {
+    List<String> result = new ArrayList<String>(command.length - 1);
+    for (int i = 1; i < command.length; i++) {
+      validateArgument(command[i]);
+      result.add(command[i]);
+    }
+    return result;
+  }
+  
+  // arguments which are null are parameter slots
+  private PreparedCommand(SchedulingOptions options, String executable, List<String> arguments) {
+    validateArgument(executable);
+    
+    shell = RunHelper.getDefaultShell();
+    this.executable = resolveExecutable(executable);
+    
+    int paramCount = 0;
+    Iterator<String> it = arguments.iterator();
+    while (it.hasNext()) {
+      if (it.next() == null) {
+        paramCount++;
+      }
+    }
+    parameterCount = paramCount;
+    
+    scriptFragments = new String[paramCount + 1];
+    int fragmentIndex = 0;
+    StringBuilder sb = new StringBuilder();
+    sb.append(RunHelper.LOCK_ECHO_COMMAND);
+    if (options != null) {
+      sb.append(options.renderLimits()).append("exec ").append(options.renderExecWrapper());
+    } else {
+      sb.append("exec ");
+    }
+    sb.append(quoteArgument(this.executable));
+    it = arguments.iterator();
+    while (it.hasNext()) {
+      String arg = it.next();
+      sb.append(' ');
+      if (arg == null) {
+        scriptFragments[fragmentIndex++] = sb.toString();
+        sb.setLength(0);
+      } else {
+        sb.append(quoteArgument(arg));
+      }
+    }
+    scriptFragments[fragmentIndex] = sb.toString();
+    
+    int length = 0;
+    for (int i = 0; i < scriptFragments.length; i++) {
+      length += scriptFragments[i].length();
+    }
+    fragmentsLength = length;
+    
+    if (parameterCount == 0) {
+      launchCommand = new String[] { shell, RunHelper.SHELL_EXECUTE_FLAG, scriptFragments[0] };
+    } else {
+      launchCommand = null;
+    }
+  }
+  
+  /**
+   * @return absolute path of the executable this command will run
+   */
+  public String getExecutable() {
+    return executable;
+  }
+  
+  /**
+   * @return number of parameters which must be bound for each execution
+   */
+  public int getParameterCount() {
+    return parameterCount;
+  }
+  
+  /**
+   * Produces the full command to hand to the runtime, with the fork lock notification
+   * already included.  The returned array must not be modified.
+   *
+   * @param parameters values for each parameter slot, in order
+   * @return command array to be exec'ed
+   */
+  String[] getLaunchCommand(String[] parameters) {
+    int providedCount = parameters == null ? 0 : parameters.length;
+    if (providedCount != parameterCount) {
+      throw new IllegalArgumentException("Expected " + parameterCount +
+                                           " parameters, got: " + providedCount);
+    }
+    if (launchCommand != null) {
+      return launchCommand;
+    }
+    
+    String[] quotedParams = new String[parameters.length];
+    int length = fragmentsLength;
+    for (int i = 0; i < parameters.length; i++) {
+      quotedParams[i] = quoteArgument(parameters[i]);
+      length += quotedParams[i].length();
+    }
+    
+    StringBuilder sb = new StringBuilder(length);
+    sb.append(scriptFragments[0]);
+    for (int i = 0; i < quotedParams.length; i++) {
+      sb.append(quotedParams[i]).append(scriptFragments[i + 1]);
+    }
+    
+    return new String[] { shell, RunHelper.SHELL_EXECUTE_FLAG, sb.toString() };
+  }
+  
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < scriptFragments.length; i++) {
+      if (i > 0) {
+        sb.append(PARAMETER_DISPLAY);
+      }
+      sb.append(scriptFragments[i]);
+    }
+    return sb.substring(RunHelper.LOCK_ECHO_COMMAND.length());
+  }
+  
+  /**
+   * Builds a {@link PreparedCommand} which may contain parameter slots.
+   */
+  public static class Builder {
+    private final String executable;
+    private final List<String> arguments;
+    private SchedulingOptions options;
+    private boolean optionsSet;
+    
+    public Builder(String executable) {
+      validateArgument(executable);
+      
+      this.executable = executable;
+      arguments = new ArrayList<String>();
+      options = null;
+      optionsSet = false;
+    }
+    
+    /**
+     * Sets the scheduling options, if not set the options from 
+     * {@link RunHelper#getDefaultSchedulingOptions()} are used at the time of building.
+     * 
+     * @param options scheduling options to launch with, or null to not modify scheduling
+     * @return this builder
+     */
+    public Builder setSchedulingOptions(SchedulingOptions options) {
+      this.options = options == null ? null : new SchedulingOptions(options);
+      optionsSet = true;
+      return this;
+    }
+    
+    /**
+     * Adds an argument which is passed literally.
+     * 
+     * @param arg argument to add
+     * @return this builder
+     */
+    public Builder addArgument(String arg) {
+      validateArgument(arg);
+      arguments.add(arg);
+      return this;
+    }
+    
+    public Builder addArguments(String... args) {
+      for (int i = 0; i < args.length; i++) {
+        addArgument(args[i]);
+      }
+      return this;
+    }
+    
+    /**
+     * Adds a parameter slot, which must be provided a value for each execution.  Values 
+     * are bound in the order the slots were added.
+     * 
+     * @return this builder
+     */
+    public Builder addParameter() {
+      arguments.add(null);
+      return this;
+    }
+    
+    public PreparedCommand build() {
+      return new PreparedCommand(optionsSet ? options : RunHelper.getDefaultSchedulingOptions(), 
+                                 executable, new ArrayList<String>(arguments));
+    }
+  }
+}
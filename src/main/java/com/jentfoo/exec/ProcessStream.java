@@ -2,6 +2,7 @@ package com.jentfoo.exec;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.util.Iterator;
@@ -10,20 +11,101 @@ import java.util.LinkedList;
 public class ProcessStream extends InputStream {
   private final LinkedList<ByteBuffer> dataStream;
   private boolean closed;
+  private boolean discarded;
+  private int bufferedBytes;
+  private int maxBufferedBytes;  // only applied to the output stream, -1 if unbounded
+  private Runnable fullListener;
   
   protected ProcessStream() {
     dataStream = new LinkedList<ByteBuffer>();
     closed = false;
+    discarded = false;
+    bufferedBytes = 0;
+    maxBufferedBytes = -1;
+    fullListener = null;
+  }
+  
+  /**
+   * Limits how much data can be buffered through the stream returned from
+   * {@link #getOutputStream()}.  Once the limit is reached writes will block till data
+   * has been read.  Calls to append directly are never blocked.
+   *
+   * @param maxBytes maximum bytes to buffer before blocking writes, -1 for unbounded
+   * @param fullListener invoked once the first time a write blocks, or null
+   */
+  void setBufferLimit(int maxBytes, Runnable fullListener) {
+    synchronized (this) {
+      maxBufferedBytes = maxBytes;
+      this.fullListener = fullListener;
+      
+      this.notifyAll();
+    }
+  }
+  
+  /**
+   * Drops any buffered data, and any data appended after this call.  Used once the reader
+   * is no longer interested, so writers do not remain blocked on a full buffer.
+   */
+  void discard() {
+    synchronized (this) {
+      discarded = true;
+      dataStream.clear();
+      bufferedBytes = 0;
+      
+      this.notifyAll();
+    }
   }
   
   // should be synchronized on this before calling
-  private void blockTillReadyToRead() {
+  private void blockTillReadyToRead() throws InterruptedIOException {
     while (! closed && dataStream.isEmpty()) {
       try {
         this.wait();
       } catch (InterruptedException e) {
         Thread.currentThread().interrupt();
+        throw new InterruptedIOException();
+      }
+    }
+  }
+  
+  // should be synchronized on this before calling
+  private boolean isFull() {
+    return maxBufferedBytes > 0 && bufferedBytes >= maxBufferedBytes && ! discarded;
+  }
+  
+  private void blockTillWritable() throws InterruptedIOException {
+    Runnable listener;
+    synchronized (this) {
+      if (! isFull()) {
+        return;
       }
+      
+      listener = fullListener;
+      fullListener = null;
+    }
+    
+    // run outside of the lock in case the listener needs to read
+    if (listener != null) {
+      listener.run();
+    }
+    
+    synchronized (this) {
+      while (isFull()) {
+        try {
+          this.wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException();
+        }
+      }
+    }
+  }
+  
+  // should be synchronized on this before calling
+  private void consumed(int count) {
+    bufferedBytes -= count;
+    if (maxBufferedBytes > 0) {
+      this.notifyAll();  // wake any blocked writers
     }
   }
   
@@ -39,6 +121,7 @@ public class ProcessStream extends InputStream {
         if (! nextBuffer.hasRemaining()) {
           dataStream.removeFirst();
         }
+        consumed(1);
       } else {  // stream is closed
         result = -1;
       }
@@ -77,6 +160,7 @@ public class ProcessStream extends InputStream {
           
           result += amountToCopy;
         }
+        consumed(result);
       } else {  // stream is closed
         result = -1;
       }
@@ -110,11 +194,16 @@ public class ProcessStream extends InputStream {
     }
     
     synchronized (this) {
+      if (discarded) {
+        return;
+      }
+      
       ByteBuffer newBuffer = ByteBuffer.allocate(length);
       newBuffer.put(data, offset, length);
       newBuffer.flip();
       
       dataStream.addLast(newBuffer);
+      bufferedBytes += length;
       
       this.notifyAll();
     }
@@ -139,6 +228,7 @@ public class ProcessStream extends InputStream {
     return new OutputStream() {
       @Override
       public void write(int b) throws IOException {
+        blockTillWritable();
         append(new byte[] { (byte)b });
       }
 
@@ -149,6 +239,7 @@ public class ProcessStream extends InputStream {
 
       @Override
       public void write(byte b[], int off, int len) throws IOException {
+        blockTillWritable();
         append(b, off, len);
       }
       
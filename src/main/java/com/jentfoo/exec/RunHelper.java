@@ -14,7 +14,9 @@ public class RunHelper {
   private static final String EXEC_NOTIFY_STRING = "b675817dbcb7675b93341b69991ddaf39ff7c80a"; // echo "RUNNING FOR THE WIN" | sha1sum -
   private static int MAX_CONCURRENT_FORKS = 1;
   private static String DEFAULT_SHELL = "/bin/dash";
-  private static final String SHELL_EXECUTE_FLAG = "-c";
+  private static SchedulingOptions DEFAULT_SCHEDULING_OPTIONS = null;
+  static final String SHELL_EXECUTE_FLAG = "-c";
+  static final String LOCK_ECHO_COMMAND = "echo -n \'" + EXEC_NOTIFY_STRING + "\' ; ";
   
   /**
    * this does not limit how many programs can be running at once, 
@@ -42,6 +44,25 @@ public class RunHelper {
     DEFAULT_SHELL = path;
   }
   
+  public static String getDefaultShell() {
+    return DEFAULT_SHELL;
+  }
+  
+  /**
+   * sets the scheduling options used for commands which are not provided their own 
+   * options.  The options are copied, so later modifications will have no effect.
+   * 
+   * @param options default options, or null to launch with no scheduling changes
+   */
+  public static void setDefaultSchedulingOptions(SchedulingOptions options) {
+    DEFAULT_SCHEDULING_OPTIONS = options == null ? null : new SchedulingOptions(options);
+  }
+  
+  public static SchedulingOptions getDefaultSchedulingOptions() {
+    SchedulingOptions options = DEFAULT_SCHEDULING_OPTIONS;
+    return options == null ? null : new SchedulingOptions(options);
+  }
+  
   public static RunningProcess execCommand(Executor executor, 
                                            String command, 
                                            boolean storeStdOut) throws IOException, 
@@ -54,12 +75,21 @@ public class RunHelper {
                                            boolean storeStdOut, 
                                            boolean forceLog) throws IOException, 
                                                                     InterruptedException {
+    return execCommand(executor, DEFAULT_SCHEDULING_OPTIONS, command, storeStdOut, forceLog);
+  }
+  
+  public static RunningProcess execCommand(Executor executor, 
+                                           SchedulingOptions options, 
+                                           String command, 
+                                           boolean storeStdOut, 
+                                           boolean forceLog) throws IOException, 
+                                                                    InterruptedException {
     String[] shellCommand = {DEFAULT_SHELL,
                              SHELL_EXECUTE_FLAG,
                              command
                             };
     
-    return execCommand(executor, shellCommand, storeStdOut, forceLog);
+    return execCommand(executor, options, shellCommand, storeStdOut, forceLog);
   }
   
   public static RunningProcess execCommand(Executor executor, 
@@ -74,8 +104,60 @@ public class RunHelper {
                                            boolean storeStdOut, 
                                            boolean forceLog) throws IOException, 
                                                                     InterruptedException {
-    ForkLock forkLock = getAndAcquireForkLock(originalCommand);  // lock is released by ExecResult when it consumes stdOut
+    return execCommand(executor, DEFAULT_SCHEDULING_OPTIONS, originalCommand, storeStdOut, forceLog);
+  }
+  
+  /**
+   * Executes a command, launching it with the provided scheduling options.
+   * 
+   * @param options scheduling options for this command, or null to not modify scheduling
+   */
+  public static RunningProcess execCommand(Executor executor, 
+                                           SchedulingOptions options, 
+                                           String[] originalCommand, 
+                                           boolean storeStdOut, 
+                                           boolean forceLog) throws IOException, 
+                                                                    InterruptedException {
+    ForkLock forkLock = getAndAcquireForkLock(originalCommand, options);  // lock is released by ExecResult when it consumes stdOut
     maybeLog(originalCommand, forceLog);
+    
+    return launch(executor, storeStdOut, forkLock);
+  }
+  
+  public static RunningProcess execCommand(Executor executor, 
+                                           PreparedCommand command, 
+                                           boolean storeStdOut, 
+                                           String... parameters) throws IOException, 
+                                                                        InterruptedException {
+    return execCommand(executor, command, storeStdOut, false, parameters);
+  }
+  
+  /**
+   * Executes a command which was already prepared, avoiding the need to re-render the 
+   * command string for each execution.
+   * 
+   * @param parameters values for each parameter slot, in order
+   */
+  public static RunningProcess execCommand(Executor executor, 
+                                           PreparedCommand command, 
+                                           boolean storeStdOut, 
+                                           boolean forceLog, 
+                                           String... parameters) throws IOException, 
+                                                                        InterruptedException {
+    String[] launchCommand = command.getLaunchCommand(parameters); // validate parameters before acquiring lock
+    ForkLock forkLock = ForkLock.forRenderedCommand(launchCommand);
+    forkLock.acquire();
+    if (forceLog || VERBOSE) {
+      System.out.println("Running command: " + 
+                           launchCommand[2].substring(LOCK_ECHO_COMMAND.length()));
+    }
+    
+    return launch(executor, storeStdOut, forkLock);
+  }
+  
+  private static RunningProcess launch(Executor executor, 
+                                       boolean storeStdOut, 
+                                       ForkLock forkLock) throws IOException {
     try {
       return new RunningProcess(executor, storeStdOut, forkLock);
     } catch (IOException e) {
@@ -91,12 +173,30 @@ public class RunHelper {
     }
   }
   
-  private static ForkLock getAndAcquireForkLock(String[] originalCommand) throws InterruptedException {
-    ForkLock fl = new ForkLock(originalCommand);
+  private static ForkLock getAndAcquireForkLock(String[] originalCommand, 
+                                                SchedulingOptions options) throws InterruptedException {
+    ForkLock fl = new ForkLock(originalCommand, options);
     fl.acquire();
     return fl;
   }
   
+  // renders the script to run with the shell, including the fork lock notification
+  static String renderScript(String shell, String script, SchedulingOptions options) {
+    if (options == null) {
+      return LOCK_ECHO_COMMAND + script;
+    }
+    
+    String execWrapper = options.renderExecWrapper();
+    if (execWrapper.length() == 0) {
+      return LOCK_ECHO_COMMAND + options.renderLimits() + script;
+    } else {
+      // script must be run in a new shell so that the tools can exec into it
+      return LOCK_ECHO_COMMAND + options.renderLimits() + "exec " + execWrapper + 
+               PreparedCommand.quoteArgument(shell) + ' ' + SHELL_EXECUTE_FLAG + ' ' + 
+               PreparedCommand.quoteArgument(script);
+    }
+  }
+  
   private static boolean startsWithShell(String[] command) {
     return command[0].endsWith("sh") || 
            command[0].endsWith("bash") || 
@@ -158,12 +258,32 @@ public class RunHelper {
     private boolean released;
     private final String[] commandWithLock;
     
-    public ForkLock(String[] originalCommand) {
+    /**
+     * Constructs a lock for a command which was already rendered with the 
+     * LOCK_ECHO_COMMAND, such as one from a {@link PreparedCommand}.
+     */
+    public static ForkLock forRenderedCommand(String[] commandWithLock) {
+      if (commandWithLock.length != 3 || 
+          ! commandWithLock[2].startsWith(LOCK_ECHO_COMMAND)) {
+        throw new IllegalArgumentException("Command was not rendered with lock notification: \n" + 
+                                             getCommandStr(commandWithLock, true));
+      }
+      
+      return new ForkLock(commandWithLock);
+    }
+    
+    private ForkLock(String[] commandWithLock) {
+      lockNotifyStr = EXEC_NOTIFY_STRING;
+      acquired = false;
+      released = false;
+      this.commandWithLock = commandWithLock;
+    }
+    
+    public ForkLock(String[] originalCommand, SchedulingOptions options) {
       lockNotifyStr = EXEC_NOTIFY_STRING;
       acquired = false;
       released = false;
       
-      String lockEchoCommand = "echo -n \'" + lockNotifyStr + "\' ; ";
       if (startsWithShell(originalCommand)) {
         if (! originalCommand[1].trim().equals(SHELL_EXECUTE_FLAG)) {
           throw new IllegalStateException("Unexpected command input, " +
@@ -174,12 +294,14 @@ public class RunHelper {
         commandWithLock = new String[3];
         commandWithLock[0] = originalCommand[0];
         commandWithLock[1] = originalCommand[1];
-        commandWithLock[2] = lockEchoCommand + getCommandStr(originalCommand, 2, false);
+        commandWithLock[2] = renderScript(originalCommand[0], 
+                                          getCommandStr(originalCommand, 2, false), options);
       } else {
         commandWithLock = new String[3];
         commandWithLock[0] = DEFAULT_SHELL;
         commandWithLock[1] = SHELL_EXECUTE_FLAG;
-        commandWithLock[2] = lockEchoCommand + getCommandStr(originalCommand, 0, false);
+        commandWithLock[2] = renderScript(DEFAULT_SHELL, 
+                                          getCommandStr(originalCommand, 0, false), options);
       }
     }
     
@@ -264,6 +386,16 @@ public class RunHelper {
       stdOutStr = null;
       stdErrStr = null;
       exitValue = null;
+      try {
+        startPipers(storeStdOut, forkLock);
+      } catch (RuntimeException e) {
+        // without pipers the process could block forever on a full pipe
+        process.destroy();
+        throw e;
+      }
+    }
+    
+    private void startPipers(boolean storeStdOut, ForkLock forkLock) {
       if (storeStdOut) {
         executor.execute(new StreamPiper(process.getInputStream(), 
                                          true, 
@@ -274,7 +406,7 @@ public class RunHelper {
                                            public void run() {
                                              output.stdOutClosed();
                                            }
-                                         }, forkLock));
+                                         }, forkLock, false));
       } else {
         output.stdOutClosed();
         executor.execute(new StreamConsumer(process.getInputStream(), forkLock));
@@ -288,7 +420,7 @@ public class RunHelper {
                                          public void run() {
                                            output.stdErrClosed();
                                          }
-                                       }, null));
+                                       }, null, false));
     }
 
     public void blockTillFinished() throws InterruptedException {
@@ -348,8 +480,33 @@ public class RunHelper {
       return output.stdErr;
     }*/
     
+    // reads the output as it is produced, must not be used in combination with stdOutStr
+    InputStream stdOutStream() {
+      return output.stdOut;
+    }
+    
+    // invoked once both stdOut and stdErr have been fully read, without consuming a thread to wait
+    void setFinishListener(Runnable listener) {
+      output.setFinishListener(listener);
+    }
+    
+    // limits the buffered stdOut, once full the process is blocked till output is read
+    void setStdOutBufferLimit(int maxBytes, Runnable fullListener) {
+      output.stdOut.setBufferLimit(maxBytes, fullListener);
+    }
+    
+    // drops any unread stdOut so the process can run to completion without a reader
+    void discardStdOut() {
+      output.stdOut.discard();
+    }
+    
+    void destroy() {
+      process.destroy();
+    }
+    
     public void pipeToStdIn(InputStream stream) {
-      executor.execute(new StreamPiper(stream, true, process.getOutputStream(), true, null, null));
+      // the process may exit without reading all its input (ie head), this is not an error
+      executor.execute(new StreamPiper(stream, true, process.getOutputStream(), true, null, null, true));
     }
     
     private static String streamToString(InputStream in) throws IOException {
@@ -370,12 +527,26 @@ public class RunHelper {
     private final ProcessStream stdErr;
     private boolean stdOutDone;
     private boolean stdErrDone;
+    private Runnable finishListener;
     
     public ExecOutput() {
       stdOut = new ProcessStream();
       stdErr = new ProcessStream();
       stdOutDone = false;
       stdErrDone = false;
+      finishListener = null;
+    }
+    
+    public void setFinishListener(Runnable listener) {
+      synchronized (this) {
+        if (! stdOutDone || ! stdErrDone) {
+          finishListener = listener;
+          return;
+        }
+      }
+      
+      // already finished, run immediately
+      listener.run();
     }
     
     public void blockTillStdStreamsDone() throws InterruptedException {
@@ -392,6 +563,8 @@ public class RunHelper {
         
         notifyAll();
       }
+      
+      maybeRunFinishListener();
     }
     
     public void stdErrClosed() {
@@ -400,6 +573,22 @@ public class RunHelper {
         
         notifyAll();
       }
+      
+      maybeRunFinishListener();
+    }
+    
+    private void maybeRunFinishListener() {
+      Runnable listener;
+      synchronized (this) {
+        if (! stdOutDone || ! stdErrDone || finishListener == null) {
+          return;
+        }
+        
+        listener = finishListener;
+        finishListener = null;
+      }
+      
+      listener.run();
     }
   }
   
@@ -459,19 +648,35 @@ public class RunHelper {
     private final boolean closeOutputWhenDone;
     private final Runnable finishRunnable;
     private final ForkLock toReleaseLock;
+    private final boolean ignoreOutputFailure;
     
     private StreamPiper(InputStream inStream, 
                         boolean closeInputWhenDone, 
                         OutputStream outStream, 
                         boolean closeOutputWhenDone, 
                         Runnable finishRunnable, 
-                        ForkLock toReleaseLock) {
+                        ForkLock toReleaseLock, 
+                        boolean ignoreOutputFailure) {
       this.inStream = inStream;
       this.closeInputWhenDone = closeInputWhenDone;
       this.outStream = outStream;
       this.closeOutputWhenDone = closeOutputWhenDone;
       this.finishRunnable = finishRunnable;
       this.toReleaseLock = toReleaseLock;
+      this.ignoreOutputFailure = ignoreOutputFailure;
+    }
+    
+    // returns false if the write failed and the failure should be ignored
+    private boolean write(byte[] data, int offset, int length) throws IOException {
+      try {
+        outStream.write(data, offset, length);
+        return true;
+      } catch (IOException e) {
+        if (ignoreOutputFailure) {
+          return false;
+        }
+        throw e;
+      }
     }
 
     @Override
@@ -504,7 +709,9 @@ public class RunHelper {
                 tempSB = null;  // no longer needed
               }
             } else {
-              outStream.write(buffer, 0, readCount);
+              if (! write(buffer, 0, readCount)) {
+                break;
+              }
             }
           }
         } finally {
@@ -515,10 +722,20 @@ public class RunHelper {
               }
             } finally {
               if (closeOutputWhenDone) {
-                outStream.close();
+                try {
+                  outStream.close();
+                } catch (IOException e) {
+                  if (! ignoreOutputFailure) {
+                    throw e;
+                  }
+                }
               }
             }
           } finally {
+            if (toReleaseLock != null) {
+              // process may have ended before the lock notification, release so forks can continue
+              toReleaseLock.release();
+            }
             if (finishRunnable != null) {
               finishRunnable.run();
             }
@@ -0,0 +1,196 @@
+package com.jentfoo.exec;
+
+/**
+ * Controls how a launched process is scheduled and what resources it may consume.
+ *
+ * Resource limits are applied by the launching shell (through its ulimit builtin) before
+ * the command is exec'ed.  CPU affinity, nice level, and I/O scheduling are applied by
+ * exec'ing through taskset, nice and ionice, so those tools must be available on the PATH
+ * when used.  Any option not set is inherited from the JVM as normal.
+ *
+ * Options are read at the time a command is launched or prepared, so later modifications
+ * do not impact commands already prepared or running.
+ */
+public class SchedulingOptions {
+  public static final int IO_CLASS_REALTIME = 1;
+  public static final int IO_CLASS_BEST_EFFORT = 2;
+  public static final int IO_CLASS_IDLE = 3;
+  private static final String LIMIT_FAILURE_EXIT = " || exit 126 ; ";
+  
+  private int[] cpuAffinity;
+  private Integer niceLevel;
+  private int ioClass;
+  private int ioPriority;
+  private long addressSpaceLimit;
+  private long openFilesLimit;
+  private long cpuTimeLimit;
+  
+  public SchedulingOptions() {
+    cpuAffinity = null;
+    niceLevel = null;
+    ioClass = -1;
+    ioPriority = -1;
+    addressSpaceLimit = -1;
+    openFilesLimit = -1;
+    cpuTimeLimit = -1;
+  }
+  
+  public SchedulingOptions(SchedulingOptions toCopy) {
+    cpuAffinity = toCopy.cpuAffinity;  // array is never modified once set
+    niceLevel = toCopy.niceLevel;
+    ioClass = toCopy.ioClass;
+    ioPriority = toCopy.ioPriority;
+    addressSpaceLimit = toCopy.addressSpaceLimit;
+    openFilesLimit = toCopy.openFilesLimit;
+    cpuTimeLimit = toCopy.cpuTimeLimit;
+  }
+  
+  /**
+   * Sets the CPU's the process is allowed to run on.
+   *
+   * @param cpus cpu numbers to allow, or null / empty to inherit the JVM's affinity
+   */
+  public void setCpuAffinity(int... cpus) {
+    if (cpus == null || cpus.length == 0) {
+      cpuAffinity = null;
+      return;
+    }
+    for (int i = 0; i < cpus.length; i++) {
+      if (cpus[i] < 0) {
+        throw new IllegalArgumentException("Invalid cpu: " + cpus[i]);
+      }
+    }
+    
+    cpuAffinity = cpus.clone();
+  }
+  
+  /**
+   * Sets the niceness adjustment, this is relative to the niceness of the JVM.  Negative
+   * values require the JVM to have permission to raise priority.
+   *
+   * @param level adjustment between -20 and 19, or null to inherit the JVM's niceness
+   */
+  public void setNiceLevel(Integer level) {
+    if (level != null && (level < -20 || level > 19)) {
+      throw new IllegalArgumentException("Nice level must be between -20 and 19");
+    }
+    
+    niceLevel = level;
+  }
+  
+  /**
+   * Sets the I/O scheduling class and priority.
+   *
+   * @param ioClass one of IO_CLASS_REALTIME, IO_CLASS_BEST_EFFORT or IO_CLASS_IDLE
+   * @param priority 0 (highest) to 7 (lowest), ignored for IO_CLASS_IDLE
+   */
+  public void setIoScheduling(int ioClass, int priority) {
+    if (ioClass != IO_CLASS_REALTIME && ioClass != IO_CLASS_BEST_EFFORT && ioClass != IO_CLASS_IDLE) {
+      throw new IllegalArgumentException("Unknown I/O scheduling class: " + ioClass);
+    } else if (ioClass != IO_CLASS_IDLE && (priority < 0 || priority > 7)) {
+      throw new IllegalArgumentException("I/O priority must be between 0 and 7");
+    }
+    
+    this.ioClass = ioClass;
+    this.ioPriority = ioClass == IO_CLASS_IDLE ? -1 : priority;
+  }
+  
+  public void clearIoScheduling() {
+    ioClass = -1;
+    ioPriority = -1;
+  }
+  
+  /**
+   * Sets RLIMIT_AS for the process.  The limit is applied in whole kilobytes.
+   *
+   * @param bytes maximum virtual memory size, or -1 to inherit the JVM's limit
+   */
+  public void setAddressSpaceLimit(long bytes) {
+    if (bytes < 1024 && bytes != -1) {
+      throw new IllegalArgumentException("Limit must be at least 1024 bytes, or -1 to unset");
+    }
+    
+    addressSpaceLimit = bytes;
+  }
+  
+  /**
+   * Sets RLIMIT_NOFILE for the process.
+   *
+   * @param files maximum number of open file descriptors, or -1 to inherit the JVM's limit
+   */
+  public void setOpenFilesLimit(long files) {
+    if (files < 1 && files != -1) {
+      throw new IllegalArgumentException("Limit must be >= 1, or -1 to unset");
+    }
+    
+    openFilesLimit = files;
+  }
+  
+  /**
+   * Sets RLIMIT_CPU for the process.
+   *
+   * @param seconds maximum CPU time in seconds, or -1 to inherit the JVM's limit
+   */
+  public void setCpuTimeLimit(long seconds) {
+    if (seconds < 1 && seconds != -1) {
+      throw new IllegalArgumentException("Limit must be >= 1, or -1 to unset");
+    }
+    
+    cpuTimeLimit = seconds;
+  }
+  
+  /**
+   * Renders the shell commands to apply resource limits.  If a limit can not be applied
+   * the shell will exit with code 126 rather than run the command.
+   *
+   * @return shell commands ending with a separator, or an empty string if no limits are set
+   */
+  String renderLimits() {
+    StringBuilder sb = new StringBuilder();
+    if (addressSpaceLimit != -1) {
+      sb.append("ulimit -v ").append(addressSpaceLimit / 1024).append(LIMIT_FAILURE_EXIT);
+    }
+    if (openFilesLimit != -1) {
+      sb.append("ulimit -n ").append(openFilesLimit).append(LIMIT_FAILURE_EXIT);
+    }
+    if (cpuTimeLimit != -1) {
+      sb.append("ulimit -t ").append(cpuTimeLimit).append(LIMIT_FAILURE_EXIT);
+    }
+    return sb.toString();
+  }
+  
+  /**
+   * Renders the chain of tools to exec through in order to apply affinity, niceness and
+   * I/O scheduling.  The tools are resolved to absolute paths through the same cache as
+   * {@link PreparedCommand}.
+   *
+   * @return tool chain ending with a space, or an empty string if none are needed
+   */
+  String renderExecWrapper() {
+    StringBuilder sb = new StringBuilder();
+    if (cpuAffinity != null) {
+      sb.append(PreparedCommand.quoteArgument(PreparedCommand.resolveExecutable("taskset")))
+        .append(" -c ");
+      for (int i = 0; i < cpuAffinity.length; i++) {
+        if (i > 0) {
+          sb.append(',');
+        }
+        sb.append(cpuAffinity[i]);
+      }
+      sb.append(' ');
+    }
+    if (niceLevel != null) {
+      sb.append(PreparedCommand.quoteArgument(PreparedCommand.resolveExecutable("nice")))
+        .append(" -n ").append(niceLevel).append(' ');
+    }
+    if (ioClass != -1) {
+      sb.append(PreparedCommand.quoteArgument(PreparedCommand.resolveExecutable("ionice")))
+        .append(" -c ").append(ioClass);
+      if (ioPriority != -1) {
+        sb.append(" -n ").append(ioPriority);
+      }
+      sb.append(' ');
+    }
+    return sb.toString();
+  }
+}
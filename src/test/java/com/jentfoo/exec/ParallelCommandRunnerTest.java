@@ -0,0 +1,226 @@
+package com.jentfoo.exec;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.jentfoo.exec.ParallelCommandRunner.ChunkReader;
+
+public class ParallelCommandRunnerTest {
+  private ExecutorService executor;
+  
+  @Before
+  public void setup() {
+    executor = Executors.newCachedThreadPool();
+  }
+  
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+    executor = null;
+  }
+  
+  private static String makeLines(int count) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < count; i++) {
+      sb.append(i).append('\n');
+    }
+    return sb.toString();
+  }
+  
+  private static InputStream toStream(String str) {
+    return new ByteArrayInputStream(str.getBytes());
+  }
+  
+  private static String runToString(ParallelCommandRunner runner, String command,
+                                    String input) throws IOException, InterruptedException {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    runner.run(command, toStream(input), output);
+    return output.toString();
+  }
+  
+  private static String readFile(File file) throws IOException {
+    InputStream in = new FileInputStream(file);
+    try {
+      ByteArrayOutputStream result = new ByteArrayOutputStream();
+      byte[] buffer = new byte[1024];
+      int readCount;
+      while ((readCount = in.read(buffer)) != -1) {
+        result.write(buffer, 0, readCount);
+      }
+      return result.toString();
+    } finally {
+      in.close();
+    }
+  }
+  
+  // counts processes which are children of this JVM and have not yet exited
+  private static int runningChildCount() throws IOException {
+    String pid = new File("/proc/self").getCanonicalFile().getName();
+    int result = 0;
+    for (File f : new File("/proc").listFiles()) {
+      if (! f.getName().matches("[0-9]+")) {
+        continue;
+      }
+      String stat;
+      try {
+        stat = readFile(new File(f, "stat"));
+      } catch (IOException e) {
+        continue; // process exited while listing
+      }
+      // fields after the command name are: state ppid ...
+      String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+      if (fields[1].equals(pid) && ! fields[0].equals("Z")) {
+        result++;
+      }
+    }
+    return result;
+  }
+  
+  @Test (timeout = 30000)
+  public void orderedOutputTest() throws Exception {
+    ParallelCommandRunner runner = new ParallelCommandRunner(executor, 4, 7, true);
+    String input = makeLines(1000);
+    
+    assertEquals(input, runToString(runner, "cat", input));
+  }
+  
+  @Test (timeout = 30000)
+  public void unorderedOutputTest() throws Exception {
+    ParallelCommandRunner runner = new ParallelCommandRunner(executor, 4, 7, false);
+    
+    String[] counts = runToString(runner, "wc -l", makeLines(1000)).trim().split("\\s+");
+    int total = 0;
+    for (String count : counts) {
+      total += Integer.parseInt(count);
+    }
+    
+    assertEquals(143, counts.length);  // 1000 / 7 rounded up
+    assertEquals(1000, total);
+  }
+  
+  @Test (timeout = 30000)
+  public void outputLargerThanBufferTest() throws Exception {
+    // each chunk must stall on its output till it is written
+    ParallelCommandRunner runner = new ParallelCommandRunner(executor, 2, 1, (byte)'\n', 64, false);
+    
+    String output = runToString(runner, "cat > /dev/null; yes | head -n 5000", makeLines(10));
+    
+    assertEquals(10 * 5000 * 2, output.length());
+  }
+  
+  @Test (timeout = 30000)
+  public void commandExitsBeforeReadingInputTest() throws Exception {
+    // chunks are larger than a pipe buffer, so writing the input will hit a closed pipe
+    ParallelCommandRunner runner = new ParallelCommandRunner(executor, 2, 20000, true);
+    
+    assertEquals("0\n20000\n40000\n", runToString(runner, "head -n 1", makeLines(60000)));
+  }
+  
+  @Test (timeout = 30000)
+  public void badExitCodeFail() throws Exception {
+    ParallelCommandRunner runner = new ParallelCommandRunner(executor, 4, 1, true);
+    
+    try {
+      runToString(runner, "read l; sleep 0.1; [ \"$l\" != 5 ]", makeLines(50));
+      fail("Exception should have thrown");
+    } catch (BadExitCodeException e) {
+      // expected
+    }
+    
+    assertEquals(0, runningChildCount());
+  }
+  
+  @Test (timeout = 30000)
+  public void interruptTest() throws Exception {
+    final ParallelCommandRunner runner = new ParallelCommandRunner(executor, 2, 1, true);
+    final Throwable[] failure = new Throwable[1];
+    Thread runThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          runToString(runner, "sleep 1", makeLines(100));
+        } catch (Throwable t) {
+          failure[0] = t;
+        }
+      }
+    });
+    runThread.start();
+    Thread.sleep(200);
+    runThread.interrupt();
+    runThread.join(10000);
+    
+    assertFalse(runThread.isAlive());
+    assertTrue(failure[0] instanceof InterruptedException);
+    assertEquals(0, runningChildCount());
+  }
+  
+  @Test (expected = IOException.class, timeout = 30000)
+  public void recordLargerThanMaxChunkFail() throws Exception {
+    ParallelCommandRunner runner = new ParallelCommandRunner(executor, 2, 1, (byte)'\n', 16, true);
+    
+    runToString(runner, "cat", "short\n" + makeLines(20).replace('\n', ' ') + '\n');
+  }
+  
+  @Test
+  public void chunkReaderFinalRecordWithoutDelimiterTest() throws IOException {
+    ChunkReader reader = new ChunkReader(toStream("a\nb\nc"), 2, (byte)'\n', 1024);
+    
+    assertArrayEquals("a\nb\n".getBytes(), reader.next());
+    assertArrayEquals("c".getBytes(), reader.next());
+    assertNull(reader.next());
+  }
+  
+  @Test
+  public void chunkReaderSplitAtMaxBytesTest() throws IOException {
+    ChunkReader reader = new ChunkReader(toStream("aa\nbb\ncc\n"), 10, (byte)'\n', 7);
+    
+    assertArrayEquals("aa\nbb\n".getBytes(), reader.next());
+    assertArrayEquals("cc\n".getBytes(), reader.next());
+    assertNull(reader.next());
+  }
+  
+  @Test
+  public void chunkReaderExactMaxBytesTest() throws IOException {
+    ChunkReader reader = new ChunkReader(toStream("aa\nbb\ncc\n"), 10, (byte)'\n', 6);
+    
+    assertArrayEquals("aa\nbb\n".getBytes(), reader.next());
+    assertArrayEquals("cc\n".getBytes(), reader.next());
+    assertNull(reader.next());
+  }
+  
+  @Test (expected = IOException.class)
+  public void chunkReaderRecordTooLargeFail() throws IOException {
+    new ChunkReader(toStream("aaaaaaaa\n"), 1, (byte)'\n', 4).next();
+  }
+  
+  @Test (expected = IllegalArgumentException.class)
+  public void threadPoolTooSmallFail() {
+    ThreadPoolExecutor tpe = new ThreadPoolExecutor(4, 4, 1, TimeUnit.SECONDS,
+                                                    new LinkedBlockingQueue<Runnable>());
+    try {
+      new ParallelCommandRunner(tpe, 2, 1, true);
+    } finally {
+      tpe.shutdown();
+    }
+  }
+  
+  @Test (expected = IllegalArgumentException.class)
+  public void zeroParallelismFail() {
+    new ParallelCommandRunner(executor, 0, 1, true);
+  }
+}
@@ -0,0 +1,175 @@
+package com.jentfoo.exec;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+import com.jentfoo.exec.RunHelper.RunningProcess;
+
+public class PreparedCommandTest {
+  private static final String SHELL_PATH = "/bin/sh";
+  
+  @Test
+  public void quoteArgumentSafeCharactersTest() {
+    String arg = "abc-XYZ_019./path=a:b,c+d@e%f";
+    
+    assertSame(arg, PreparedCommand.quoteArgument(arg));
+  }
+  
+  @Test
+  public void quoteArgumentEmptyTest() {
+    assertEquals("''", PreparedCommand.quoteArgument(""));
+  }
+  
+  @Test
+  public void quoteArgumentSingleQuoteTest() {
+    assertEquals("'it'\\''s'", PreparedCommand.quoteArgument("it's"));
+    assertEquals("''\\'''", PreparedCommand.quoteArgument("'"));
+  }
+  
+  @Test
+  public void quoteArgumentMetacharactersTest() {
+    String arg = "a b;c|d&e$(f)`g`*?\\\"<>{}\n";
+    
+    assertEquals('\'' + arg + '\'', PreparedCommand.quoteArgument(arg));
+  }
+  
+  @Test (expected = IllegalArgumentException.class)
+  public void quoteArgumentNullCharacterFail() {
+    PreparedCommand.quoteArgument("a\0b");
+  }
+  
+  @Test (expected = IllegalArgumentException.class)
+  public void quoteArgumentNullFail() {
+    PreparedCommand.quoteArgument(null);
+  }
+  
+  @Test
+  public void noParametersTest() {
+    PreparedCommand pc = new PreparedCommand((SchedulingOptions)null, SHELL_PATH, "-c", "echo hi");
+    String[] launchCommand = pc.getLaunchCommand(new String[0]);
+    
+    assertEquals(0, pc.getParameterCount());
+    assertEquals(SHELL_PATH, pc.getExecutable());
+    assertArrayEquals(new String[] { RunHelper.getDefaultShell(), RunHelper.SHELL_EXECUTE_FLAG,
+                                     RunHelper.LOCK_ECHO_COMMAND + "exec /bin/sh -c 'echo hi'" },
+                      launchCommand);
+    // pre-rendered command should be reused
+    assertSame(launchCommand, pc.getLaunchCommand(null));
+  }
+  
+  @Test
+  public void bindParametersTest() {
+    PreparedCommand pc = new PreparedCommand.Builder(SHELL_PATH)
+                                            .setSchedulingOptions(null)
+                                            .addParameter()
+                                            .addArgument("-x")
+                                            .addParameter()
+                                            .build();
+    
+    assertEquals(2, pc.getParameterCount());
+    assertEquals(RunHelper.LOCK_ECHO_COMMAND + "exec /bin/sh first -x 'it'\\''s here'",
+                 pc.getLaunchCommand(new String[] { "first", "it's here" })[2]);
+    assertEquals(RunHelper.LOCK_ECHO_COMMAND + "exec /bin/sh '' -x second",
+                 pc.getLaunchCommand(new String[] { "", "second" })[2]);
+  }
+  
+  @Test
+  public void literalBracesAreNotParametersTest() {
+    String copiedBraces = new String("{}");
+    PreparedCommand pc = new PreparedCommand((SchedulingOptions)null, SHELL_PATH, "{}", copiedBraces);
+    
+    assertEquals(0, pc.getParameterCount());
+    assertEquals(RunHelper.LOCK_ECHO_COMMAND + "exec /bin/sh '{}' '{}'",
+                 pc.getLaunchCommand(null)[2]);
+  }
+  
+  @Test
+  public void builderArgumentsTest() {
+    PreparedCommand pc = new PreparedCommand.Builder(SHELL_PATH)
+                                            .setSchedulingOptions(null)
+                                            .addArguments("-c", "echo $0")
+                                            .addArgument("{}")
+                                            .addParameter()
+                                            .build();
+    
+    assertEquals(1, pc.getParameterCount());
+    assertEquals(RunHelper.LOCK_ECHO_COMMAND + "exec /bin/sh -c 'echo $0' '{}' value",
+                 pc.getLaunchCommand(new String[] { "value" })[2]);
+  }
+  
+  @Test
+  public void toStringTest() {
+    PreparedCommand pc = new PreparedCommand.Builder(SHELL_PATH)
+                                            .setSchedulingOptions(null)
+                                            .addArgument("a b")
+                                            .addParameter()
+                                            .build();
+    
+    assertEquals("exec /bin/sh 'a b' {}", pc.toString());
+  }
+  
+  @Test (timeout = 10000)
+  public void execTest() throws Exception {
+    ExecutorService executor = Executors.newCachedThreadPool();
+    try {
+      PreparedCommand pc = new PreparedCommand.Builder(SHELL_PATH)
+                                              .setSchedulingOptions(null)
+                                              .addArguments("-c", "echo \"$1\"; exit $2", "sh")
+                                              .addParameter()
+                                              .addParameter()
+                                              .build();
+      
+      // more runs than the fork limit, so this would block if the fork lock was not released
+      for (int i = 0; i < 5; i++) {
+        RunningProcess rp = RunHelper.execCommand(executor, pc, true, "it's $" + i, "0");
+        
+        assertEquals("it's $" + i + "\n", rp.stdOutStr());
+        assertEquals(0, rp.exitValue());
+      }
+      
+      RunningProcess rp = RunHelper.execCommand(executor, pc, true, "fail", "3");
+      assertEquals("fail\n", rp.stdOutStr());
+      assertEquals(3, rp.exitValue());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+  
+  @Test (expected = IllegalArgumentException.class)
+  public void wrongParameterCountFail() {
+    PreparedCommand pc = new PreparedCommand.Builder(SHELL_PATH).addParameter().build();
+    
+    pc.getLaunchCommand(new String[] { "a", "b" });
+  }
+  
+  @Test (expected = IllegalArgumentException.class)
+  public void nullParameterFail() {
+    PreparedCommand pc = new PreparedCommand.Builder(SHELL_PATH).addParameter().build();
+    
+    pc.getLaunchCommand(new String[] { null });
+  }
+  
+  @Test (expected = IllegalArgumentException.class)
+  public void nullArgumentFail() {
+    new PreparedCommand((SchedulingOptions)null, SHELL_PATH, null);
+  }
+  
+  @Test (expected = IllegalArgumentException.class)
+  public void builderNullArgumentFail() {
+    new PreparedCommand.Builder(SHELL_PATH).addArgument(null);
+  }
+  
+  @Test (expected = IllegalArgumentException.class)
+  public void noExecutableFail() {
+    new PreparedCommand((SchedulingOptions)null);
+  }
+  
+  @Test (expected = IllegalArgumentException.class)
+  public void missingExecutableFail() {
+    new PreparedCommand((SchedulingOptions)null, "/no/such/executable");
+  }
+}
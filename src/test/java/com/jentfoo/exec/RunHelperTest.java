@@ -0,0 +1,81 @@
+package com.jentfoo.exec;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+import com.jentfoo.exec.RunHelper.RunningProcess;
+
+public class RunHelperTest {
+  private static final String SHELL_PATH = "/bin/dash";
+  private static final String SCRIPT = "echo 'a b' | wc -c";
+  
+  @Test
+  public void renderScriptNoOptionsTest() {
+    assertEquals(RunHelper.LOCK_ECHO_COMMAND + SCRIPT,
+                 RunHelper.renderScript(SHELL_PATH, SCRIPT, null));
+    assertEquals(RunHelper.LOCK_ECHO_COMMAND + SCRIPT,
+                 RunHelper.renderScript(SHELL_PATH, SCRIPT, new SchedulingOptions()));
+  }
+  
+  @Test
+  public void renderScriptLimitsOnlyTest() {
+    SchedulingOptions options = new SchedulingOptions();
+    options.setCpuTimeLimit(30);
+    
+    // no nested shell is needed when only limits are set
+    assertEquals(RunHelper.LOCK_ECHO_COMMAND + "ulimit -t 30 || exit 126 ; " + SCRIPT,
+                 RunHelper.renderScript(SHELL_PATH, SCRIPT, options));
+  }
+  
+  @Test
+  public void renderScriptNestedShellTest() {
+    SchedulingOptions options = new SchedulingOptions();
+    options.setOpenFilesLimit(16);
+    options.setNiceLevel(10);
+    
+    assertEquals(RunHelper.LOCK_ECHO_COMMAND + "ulimit -n 16 || exit 126 ; exec " +
+                   SchedulingOptionsTest.tool("nice") + " -n 10 " +
+                   "/bin/dash -c 'echo '\\''a b'\\'' | wc -c'",
+                 RunHelper.renderScript(SHELL_PATH, SCRIPT, options));
+  }
+  
+  @Test
+  public void renderScriptQuotesShellTest() {
+    SchedulingOptions options = new SchedulingOptions();
+    options.setNiceLevel(1);
+    
+    assertEquals(RunHelper.LOCK_ECHO_COMMAND + "exec " +
+                   SchedulingOptionsTest.tool("nice") + " -n 1 " +
+                   "'/opt/my shell' -c true",
+                 RunHelper.renderScript("/opt/my shell", "true", options));
+  }
+  
+  @Test (timeout = 10000)
+  public void execWithSchedulingOptionsTest() throws Exception {
+    SchedulingOptionsTest.tool("taskset");
+    SchedulingOptionsTest.tool("nice");
+    ExecutorService executor = Executors.newCachedThreadPool();
+    try {
+      RunningProcess rp = RunHelper.execCommand(executor, null, "nice", true, false);
+      assertEquals(0, rp.exitValue());
+      // nice levels are relative to the JVM's own
+      int niceLevel = Math.min(Integer.parseInt(rp.stdOutStr().trim()) + 5, 19);
+      SchedulingOptions options = new SchedulingOptions();
+      options.setOpenFilesLimit(33);
+      options.setNiceLevel(5);
+      options.setCpuAffinity(0);
+      
+      rp = RunHelper.execCommand(executor, options,
+                                 "ulimit -n; nice; taskset -p $$ | sed 's/.*: //'", true, false);
+      
+      assertEquals("33\n" + niceLevel + "\n1\n", rp.stdOutStr());
+      assertEquals(0, rp.exitValue());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+}
@@ -0,0 +1,149 @@
+package com.jentfoo.exec;
+
+import static org.junit.Assert.*;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+public class SchedulingOptionsTest {
+  private static final String LIMIT_EXIT = " || exit 126 ; ";
+  
+  static String tool(String name) {
+    try {
+      return PreparedCommand.resolveExecutable(name);
+    } catch (IllegalArgumentException e) {
+      // tool not installed, skip test rather than fail
+      Assume.assumeNoException(e);
+      return null;
+    }
+  }
+  
+  @Test
+  public void emptyOptionsTest() {
+    SchedulingOptions options = new SchedulingOptions();
+    
+    assertEquals("", options.renderLimits());
+    assertEquals("", options.renderExecWrapper());
+  }
+  
+  @Test
+  public void renderLimitsTest() {
+    SchedulingOptions options = new SchedulingOptions();
+    options.setAddressSpaceLimit(2048 * 1024 + 1000);  // partial kilobytes are dropped
+    options.setOpenFilesLimit(64);
+    options.setCpuTimeLimit(5);
+    
+    assertEquals("ulimit -v 2048" + LIMIT_EXIT +
+                   "ulimit -n 64" + LIMIT_EXIT +
+                   "ulimit -t 5" + LIMIT_EXIT,
+                 options.renderLimits());
+    assertEquals("", options.renderExecWrapper());
+  }
+  
+  @Test
+  public void unsetLimitTest() {
+    SchedulingOptions options = new SchedulingOptions();
+    options.setOpenFilesLimit(64);
+    options.setOpenFilesLimit(-1);
+    
+    assertEquals("", options.renderLimits());
+  }
+  
+  @Test
+  public void renderExecWrapperTest() {
+    SchedulingOptions options = new SchedulingOptions();
+    options.setCpuAffinity(0, 2, 3);
+    options.setNiceLevel(5);
+    options.setIoScheduling(SchedulingOptions.IO_CLASS_BEST_EFFORT, 7);
+    
+    assertEquals(tool("taskset") + " -c 0,2,3 " +
+                   tool("nice") + " -n 5 " +
+                   tool("ionice") + " -c 2 -n 7 ",
+                 options.renderExecWrapper());
+    assertEquals("", options.renderLimits());
+  }
+  
+  @Test
+  public void idleIoClassIgnoresPriorityTest() {
+    SchedulingOptions options = new SchedulingOptions();
+    options.setIoScheduling(SchedulingOptions.IO_CLASS_IDLE, 99);
+    
+    assertEquals(tool("ionice") + " -c 3 ", options.renderExecWrapper());
+  }
+  
+  @Test
+  public void clearOptionsTest() {
+    SchedulingOptions options = new SchedulingOptions();
+    options.setCpuAffinity(1);
+    options.setNiceLevel(1);
+    options.setIoScheduling(SchedulingOptions.IO_CLASS_IDLE, 0);
+    options.setCpuAffinity();
+    options.setNiceLevel(null);
+    options.clearIoScheduling();
+    
+    assertEquals("", options.renderExecWrapper());
+  }
+  
+  @Test
+  public void copyTest() {
+    SchedulingOptions options = new SchedulingOptions();
+    options.setNiceLevel(3);
+    options.setOpenFilesLimit(10);
+    SchedulingOptions copy = new SchedulingOptions(options);
+    options.setNiceLevel(null);
+    options.setOpenFilesLimit(-1);
+    
+    assertEquals(tool("nice") + " -n 3 ", copy.renderExecWrapper());
+    assertEquals("ulimit -n 10" + LIMIT_EXIT, copy.renderLimits());
+  }
+  
+  @Test
+  public void preparedCommandRenderTest() {
+    SchedulingOptions options = new SchedulingOptions();
+    options.setOpenFilesLimit(10);
+    options.setNiceLevel(-2);
+    PreparedCommand pc = new PreparedCommand.Builder("/bin/sh")
+                                            .setSchedulingOptions(options)
+                                            .addParameter()
+                                            .build();
+    
+    assertEquals(RunHelper.LOCK_ECHO_COMMAND + "ulimit -n 10" + LIMIT_EXIT +
+                   "exec " + tool("nice") + " -n -2 /bin/sh 'a b'",
+                 pc.getLaunchCommand(new String[] { "a b" })[2]);
+  }
+  
+  @Test (expected = IllegalArgumentException.class)
+  public void negativeCpuFail() {
+    new SchedulingOptions().setCpuAffinity(0, -1);
+  }
+  
+  @Test (expected = IllegalArgumentException.class)
+  public void niceLevelOutOfRangeFail() {
+    new SchedulingOptions().setNiceLevel(20);
+  }
+  
+  @Test (expected = IllegalArgumentException.class)
+  public void unknownIoClassFail() {
+    new SchedulingOptions().setIoScheduling(4, 0);
+  }
+  
+  @Test (expected = IllegalArgumentException.class)
+  public void ioPriorityOutOfRangeFail() {
+    new SchedulingOptions().setIoScheduling(SchedulingOptions.IO_CLASS_BEST_EFFORT, 8);
+  }
+  
+  @Test (expected = IllegalArgumentException.class)
+  public void addressSpaceLimitTooSmallFail() {
+    new SchedulingOptions().setAddressSpaceLimit(1023);
+  }
+  
+  @Test (expected = IllegalArgumentException.class)
+  public void openFilesLimitZeroFail() {
+    new SchedulingOptions().setOpenFilesLimit(0);
+  }
+  
+  @Test (expected = IllegalArgumentException.class)
+  public void cpuTimeLimitZeroFail() {
+    new SchedulingOptions().setCpuTimeLimit(0);
+  }
+}